@@ -0,0 +1,222 @@
+package com.github.kahalemakai.safely;
+
+import lombok.NonNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * An executor that runs tasks serially per key, but in parallel across keys.
+ * <p>
+ * Tasks submitted for the same key are executed in FIFO order, one at a time,
+ * while tasks for different keys are drained concurrently on a shared
+ * {@link Executor pool}. No locks are taken, neither on submission nor
+ * on execution: each key is backed by a lock-free queue that is scheduled
+ * onto the pool whenever it turns non-empty, and dropped again as soon
+ * as it runs dry, such that idle keys do not occupy any memory.
+ * <p>
+ * Failures are isolated per key. Any {@link Throwable throwable} raised by
+ * a task is routed to the error handler, and the key's queue continues
+ * with its next task. Exceptions thrown by the error handler itself are
+ * silenced (cmp. {@link Safely#runSilently(Runnable)}).
+ * <p>
+ * A key's queue runs at most {@value #BATCH_SIZE} tasks per turn on the pool,
+ * and is then rescheduled, such that busy keys cannot hog the pool's threads
+ * and starve other keys.
+ * <p>
+ * If the pool rejects a key's queue, the queue is drained on the
+ * submitting thread instead, so that no key is ever stalled.
+ * @param <K> type of keys
+ */
+public final class KeyedSafeExecutor<K> {
+    /**
+     * The maximum number of tasks a key's queue runs before yielding its pool thread.
+     */
+    public static final int BATCH_SIZE = 64;
+
+    private final ConcurrentMap<K, KeyQueue> queues = new ConcurrentHashMap<>();
+    private final Executor pool;
+    private final BiConsumer<? super K, ? super Throwable> errorHandler;
+
+    /**
+     * Construct a new instance that silently drops all task failures.
+     * @param pool
+     *     the {@code Executor} to drain the per-key queues on
+     */
+    public KeyedSafeExecutor(Executor pool) {
+        this(pool, (key, e) -> { });
+    }
+
+    /**
+     * Construct a new instance.
+     * @param pool
+     *     the {@code Executor} to drain the per-key queues on
+     * @param errorHandler
+     *     called with the key and the {@code Throwable} of any failed task
+     */
+    public KeyedSafeExecutor(@NonNull Executor pool,
+                             @NonNull BiConsumer<? super K, ? super Throwable> errorHandler) {
+        this.pool = pool;
+        this.errorHandler = errorHandler;
+    }
+
+    /* ************************************************************
+     *                       public methods                       *
+     * ***********************************************************/
+
+    /**
+     * Enqueue a {@link Runnable runnable} for the given key.
+     * <p>
+     * The {@code Runnable} will run after all previously submitted
+     * tasks of the same key have finished.
+     * @param key
+     *     the key to serialize execution on
+     * @param r
+     *     the {@code Runnable} to execute
+     */
+    public void execute(@NonNull K key, @NonNull Runnable r) {
+        enqueue(key, () -> {
+            try {
+                r.run();
+            } catch (Throwable e) {
+                handleError(key, e);
+            }
+        });
+    }
+
+    /**
+     * Enqueue a {@link Callable callable} for the given key.
+     * <p>
+     * The {@code Callable} will run after all previously submitted
+     * tasks of the same key have finished. On failure, the returned future
+     * is completed exceptionally with the {@link Throwable throwable} thrown,
+     * after it has been passed to the error handler.
+     * @param key
+     *     the key to serialize execution on
+     * @param callable
+     *     the {@code Callable} to execute
+     * @param <T>
+     *     type of return value of the {@code Callable}
+     * @return
+     *     a future holding the result of {@link Callable#call()}
+     */
+    public <T> CompletableFuture<T> submit(@NonNull K key, @NonNull Callable<T> callable) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        enqueue(key, () -> {
+            try {
+                future.complete(callable.call());
+            } catch (Throwable e) {
+                handleError(key, e);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Get the number of keys that currently have pending or running tasks.
+     * @return
+     *     the number of non-idle keys
+     */
+    public int activeKeys() {
+        return queues.size();
+    }
+
+    /* ************************************************************
+     *                      private methods                       *
+     * ***********************************************************/
+
+    private void handleError(K key, Throwable e) {
+        Safely.runSilently(() -> errorHandler.accept(key, e));
+    }
+
+    private void enqueue(K key, Runnable task) {
+        while (true) {
+            final KeyQueue queue = queues.computeIfAbsent(key, KeyQueue::new);
+            final int pending = queue.pending.get();
+            if (pending < 0) {
+                // the queue has been retired concurrently, so help removing it and retry
+                queues.remove(key, queue);
+                continue;
+            }
+            if (queue.pending.compareAndSet(pending, pending + 1)) {
+                queue.tasks.offer(task);
+                if (pending == 0) {
+                    schedule(queue);
+                }
+                return;
+            }
+        }
+    }
+
+    private void schedule(KeyQueue queue) {
+        if (!tryExecute(queue)) {
+            queue.run();
+        }
+    }
+
+    private boolean tryExecute(KeyQueue queue) {
+        try {
+            pool.execute(queue);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A lock-free FIFO queue of tasks for a single key.
+     * <p>
+     * {@code pending} counts the tasks that have been admitted but not yet
+     * run. Only the submitter that raises it from {@code 0} schedules a drain,
+     * so at most one drain is active per queue. Once the drain brings it back
+     * to {@code 0}, the queue is retired by setting it to {@code -1}, and
+     * removed from the map of queues. After {@link #BATCH_SIZE} tasks, the
+     * drain resubmits itself to the pool without touching {@code pending},
+     * so it stays the only drain of its key.
+     */
+    private final class KeyQueue implements Runnable {
+        private final K key;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private KeyQueue(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            int batch = 0;
+            while (true) {
+                Runnable task;
+                // a submitter may have been admitted without having offered its task yet
+                while ((task = tasks.poll()) == null) {
+                    Thread.yield();
+                }
+                task.run();
+                if (pending.decrementAndGet() == 0) {
+                    // if the CAS fails, a new submitter has already scheduled another drain
+                    if (pending.compareAndSet(0, -1)) {
+                        queues.remove(key, this);
+                    }
+                    return;
+                }
+                if (++batch == BATCH_SIZE) {
+                    if (tryExecute(this)) {
+                        return;
+                    }
+                    // the pool rejected us, so keep draining on this thread
+                    batch = 0;
+                }
+            }
+        }
+    }
+
+}
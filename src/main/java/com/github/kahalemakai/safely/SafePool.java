@@ -0,0 +1,612 @@
+package com.github.kahalemakai.safely;
+
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/**
+ * A bounded, lock-free pool of expensive {@link AutoCloseable AutoCloseables},
+ * such as connections, parsers or buffers.
+ * <p>
+ * Objects are borrowed using {@link #borrow()} and handed back using
+ * {@link #release(AutoCloseable)} or {@link #release(AutoCloseable, Throwable)},
+ * or both at once using {@link Safely#withPooled(SafePool, ThrowingFunction)}.
+ * On release, an object is validated and put back into the pool; it is closed
+ * and discarded instead if validation fails, or if it was released after a
+ * failure of one of the configured exception types. Failures wrapped into
+ * (possibly nested) {@link WrappingException WrappingExceptions} are classified
+ * by their innermost {@link WrappingException#getWrappedException() wrapped exception}.
+ * <p>
+ * Objects that have been idle for longer than the idle timeout are closed
+ * lazily on borrow and release, or explicitly using {@link #evictIdle()}.
+ * <p>
+ * Instances are created using {@link #builder(Callable)}.
+ * @param <R> type of pooled objects
+ */
+public final class SafePool<R extends AutoCloseable> implements AutoCloseable {
+    private static final Object CANCELLED = new Object();
+
+    private final ConcurrentLinkedDeque<Idle<R>> idle = new ConcurrentLinkedDeque<>();
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final Set<Loan> borrowed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder borrowWaitNanos = new LongAdder();
+    private final Callable<? extends R> factory;
+    private final int maxSize;
+    private final Predicate<? super R> validator;
+    private final List<Class<? extends Throwable>> evictOn;
+    private final long idleTimeoutNanos;
+    private final long borrowTimeoutNanos;
+    private volatile boolean closed;
+
+    private SafePool(Builder<R> builder) {
+        this.factory = builder.factory;
+        this.maxSize = builder.maxSize;
+        this.validator = builder.validator;
+        this.evictOn = Collections.unmodifiableList(new ArrayList<>(builder.evictOn));
+        this.idleTimeoutNanos = builder.idleTimeoutNanos;
+        this.borrowTimeoutNanos = builder.borrowTimeoutNanos;
+    }
+
+    /**
+     * Start building a new pool.
+     * @param factory
+     *     the {@code Callable} used to create new pooled objects
+     * @param <R>
+     *     type of pooled objects
+     * @return
+     *     a new {@code Builder}
+     */
+    public static <R extends AutoCloseable> Builder<R> builder(@NonNull Callable<? extends R> factory) {
+        return new Builder<>(factory);
+    }
+
+    /* ************************************************************
+     *                       public methods                       *
+     * ***********************************************************/
+
+    /**
+     * Borrow an object from the pool.
+     * <p>
+     * Idle objects are reused, most recently released first. If there are
+     * none, a new object is created, as long as the pool has not reached
+     * its maximum size; otherwise, this method waits for an object to be
+     * released, up to the borrow timeout.
+     * <p>
+     * Released objects are handed to waiting borrowers directly, in the order
+     * they started waiting. This is not strictly fair, though: a borrower
+     * arriving while others wait may still take an idle object or the capacity
+     * freed by an evicted object, and thus overtake the waiting borrowers.
+     * @return
+     *     the borrowed object
+     * @throws WrappingException
+     *     wrapping a {@link TimeoutException TimeoutException} if no object became
+     *     available in time, an {@link InterruptedException InterruptedException}
+     *     if interrupted while waiting, the exception thrown by the factory,
+     *     or a {@link NullPointerException NullPointerException} if the factory returned {@code null}
+     * @throws IllegalStateException
+     *     if the pool has been closed
+     */
+    public R borrow() {
+        final long start = System.nanoTime();
+        checkOpen();
+        final R resource = tryAcquire();
+        if (resource != null) {
+            return lend(resource, start);
+        }
+        final Waiter waiter = new Waiter();
+        waiters.offer(waiter);
+        try {
+            return lend(await(waiter, start), start);
+        } catch (RuntimeException | Error e) {
+            leave(waiter);
+            // we may have swallowed a signal meant for the next waiter
+            signalIfAvailable();
+            throw e;
+        }
+    }
+
+    /**
+     * Hand a borrowed object back to the pool after successful usage.
+     * <p>
+     * The object is closed and discarded if it does not pass validation,
+     * or if the pool has been closed.
+     * @param resource
+     *     the object to release
+     * @throws IllegalStateException
+     *     if {@code resource} is not currently borrowed from this pool
+     */
+    public void release(@NonNull R resource) {
+        release(resource, null);
+    }
+
+    /**
+     * Hand a borrowed object back to the pool.
+     * <p>
+     * If {@code failure} is non-null and classifies as one of the exception
+     * types the pool evicts on, the object is closed and discarded. Otherwise,
+     * it is treated as in {@link #release(AutoCloseable)}.
+     * @param resource
+     *     the object to release
+     * @param failure
+     *     the {@code Throwable} thrown while using the object, or {@code null}
+     * @throws IllegalStateException
+     *     if {@code resource} is not currently borrowed from this pool
+     */
+    public void release(@NonNull R resource, Throwable failure) {
+        if (!borrowed.remove(new Loan(resource))) {
+            throw new IllegalStateException("object is not borrowed from this pool");
+        }
+        if ((failure != null && evicts(failure)) || closed || !isValid(resource)) {
+            destroy(resource);
+            return;
+        }
+        giveBack(resource);
+        evictExpiredTail();
+    }
+
+    /**
+     * Test whether a failure causes pooled objects to be evicted.
+     * <p>
+     * A {@link WrappingException WrappingException} is classified by its
+     * wrapped exception, unwrapping nested {@code WrappingExceptions}
+     * as well. Subclasses of the configured exception types
+     * are evicted on as well.
+     * @param failure
+     *     the failure to classify
+     * @return
+     *     whether objects in use during {@code failure} will be evicted
+     */
+    public boolean evicts(@NonNull Throwable failure) {
+        Throwable cause = failure;
+        while (cause instanceof WrappingException) {
+            cause = ((WrappingException) cause).getWrappedException();
+        }
+        for (Class<? extends Throwable> exceptionClass : evictOn) {
+            if (exceptionClass.isInstance(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Close and discard all objects that have been idle for longer
+     * than the idle timeout.
+     * @return
+     *     the number of evicted objects
+     */
+    public int evictIdle() {
+        final long now = System.nanoTime();
+        int evicted = 0;
+        for (Idle<R> candidate : idle) {
+            if (isExpired(candidate, now) && idle.removeFirstOccurrence(candidate)) {
+                idleCount.decrementAndGet();
+                destroy(candidate.resource);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Close the pool and all idle objects.
+     * <p>
+     * Borrowed objects are closed once they get released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        drainIdle();
+        for (Waiter waiter : waiters) {
+            LockSupport.unpark(waiter.thread);
+        }
+    }
+
+    /* ************************************************************
+     *                          metrics                           *
+     * ***********************************************************/
+
+    /**
+     * Get the number of objects currently owned by the pool,
+     * both idle and borrowed.
+     * @return the pool size
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    /**
+     * Get the number of idle objects.
+     * @return the number of idle objects
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * Get the number of successful calls to {@link #borrow()}.
+     * @return the number of borrows
+     */
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    /**
+     * Get the number of borrows served by an idle object.
+     * @return the number of pool hits
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * Get the ratio of borrows served by an idle object,
+     * as opposed to a newly created one.
+     * @return the pool hit rate, or {@code 0} if nothing has been borrowed yet
+     */
+    public double getHitRate() {
+        final long borrows = borrowCount.sum();
+        return borrows == 0 ? 0 : (double) hitCount.sum() / borrows;
+    }
+
+    /**
+     * Get the total time spent in successful calls to {@link #borrow()},
+     * including creation of new objects.
+     * @return the total borrow wait time in nanoseconds
+     */
+    public long getTotalBorrowWaitNanos() {
+        return borrowWaitNanos.sum();
+    }
+
+    /**
+     * Get the average time spent in successful calls to {@link #borrow()}.
+     * @return the average borrow wait time in nanoseconds,
+     *     or {@code 0} if nothing has been borrowed yet
+     */
+    public double getAverageBorrowWaitNanos() {
+        final long borrows = borrowCount.sum();
+        return borrows == 0 ? 0 : (double) borrowWaitNanos.sum() / borrows;
+    }
+
+    /* ************************************************************
+     *                      private methods                       *
+     * ***********************************************************/
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("pool is closed");
+        }
+    }
+
+    private R tryAcquire() {
+        Idle<R> candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (!isExpired(candidate, System.nanoTime())) {
+                hitCount.increment();
+                return candidate.resource;
+            }
+            destroy(candidate.resource);
+        }
+        int current;
+        while ((current = size.get()) < maxSize) {
+            if (size.compareAndSet(current, current + 1)) {
+                final R resource;
+                try {
+                    resource = Safely.call(factory);
+                } catch (WrappingException e) {
+                    size.decrementAndGet();
+                    signal();
+                    throw e;
+                }
+                if (resource == null) {
+                    size.decrementAndGet();
+                    signal();
+                    throw new WrappingException(new NullPointerException("factory returned null"));
+                }
+                return resource;
+            }
+        }
+        return null;
+    }
+
+    private R await(Waiter waiter, long start) {
+        while (true) {
+            final R handed = waiter.handed();
+            if (handed != null) {
+                hitCount.increment();
+                return handed;
+            }
+            checkOpen();
+            // an object may have become available before we started waiting
+            final R resource = tryAcquire();
+            if (resource != null) {
+                leave(waiter);
+                // pass on to the next waiter, if there is more to take
+                signalIfAvailable();
+                return resource;
+            }
+            final long waited = System.nanoTime() - start;
+            if (waited >= borrowTimeoutNanos) {
+                throw new WrappingException(new TimeoutException("no pooled object available after " + waited + "ns"));
+            }
+            LockSupport.parkNanos(this, borrowTimeoutNanos - waited);
+            if (Thread.interrupted()) {
+                throw new WrappingException(new InterruptedException("interrupted while waiting for a pooled object"));
+            }
+        }
+    }
+
+    private void leave(Waiter waiter) {
+        if (waiter.cancel()) {
+            waiters.remove(waiter);
+        } else {
+            // we have been handed an object concurrently, which we do not need anymore
+            giveBack(waiter.handed());
+        }
+    }
+
+    private void giveBack(R resource) {
+        Waiter waiter;
+        while ((waiter = waiters.poll()) != null) {
+            if (waiter.hand(resource)) {
+                LockSupport.unpark(waiter.thread);
+                return;
+            }
+        }
+        // count first, such that the counter never drops below zero
+        idleCount.incrementAndGet();
+        idle.offerFirst(new Idle<>(resource, System.nanoTime()));
+        if (closed) {
+            // close() may have drained the idle objects before we added ours
+            drainIdle();
+        }
+        // a borrower may have started waiting after we polled the waiters
+        signal();
+    }
+
+    private void signal() {
+        final Thread current = Thread.currentThread();
+        for (Waiter waiter : waiters) {
+            // skip waiters that are about to leave, as they would swallow the signal
+            if (waiter.isWaiting() && waiter.thread != current) {
+                LockSupport.unpark(waiter.thread);
+                return;
+            }
+        }
+    }
+
+    private void signalIfAvailable() {
+        if (!idle.isEmpty() || size.get() < maxSize) {
+            signal();
+        }
+    }
+
+    private R lend(R resource, long start) {
+        borrowed.add(new Loan(resource));
+        borrowWaitNanos.add(System.nanoTime() - start);
+        borrowCount.increment();
+        return resource;
+    }
+
+    private boolean isValid(R resource) {
+        try {
+            return validator.test(resource);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    private boolean isExpired(Idle<R> candidate, long now) {
+        return now - candidate.since > idleTimeoutNanos;
+    }
+
+    private void evictExpiredTail() {
+        final long now = System.nanoTime();
+        Idle<R> oldest;
+        while ((oldest = idle.peekLast()) != null && isExpired(oldest, now)) {
+            if (idle.removeLastOccurrence(oldest)) {
+                idleCount.decrementAndGet();
+                destroy(oldest.resource);
+            }
+        }
+    }
+
+    private void drainIdle() {
+        Idle<R> candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            destroy(candidate.resource);
+        }
+    }
+
+    private void destroy(R resource) {
+        size.decrementAndGet();
+        try {
+            resource.close();
+        } catch (Throwable ignore) { }
+        signal();
+    }
+
+    private static final class Idle<R> {
+        private final R resource;
+        private final long since;
+
+        private Idle(R resource, long since) {
+            this.resource = resource;
+            this.since = since;
+        }
+    }
+
+    /**
+     * A borrower waiting for an object to be handed over on release.
+     * <p>
+     * {@code slot} is {@code null} while waiting, and is set exactly once,
+     * either to the handed object, or to {@link #CANCELLED} if the borrower
+     * stopped waiting.
+     */
+    private final class Waiter {
+        private final Thread thread = Thread.currentThread();
+        private final AtomicReference<Object> slot = new AtomicReference<>();
+
+        private boolean hand(R resource) {
+            return slot.compareAndSet(null, resource);
+        }
+
+        private boolean isWaiting() {
+            return slot.get() == null;
+        }
+
+        private boolean cancel() {
+            return slot.compareAndSet(null, CANCELLED);
+        }
+
+        @SuppressWarnings("unchecked")
+        private R handed() {
+            final Object value = slot.get();
+            return value == CANCELLED ? null : (R) value;
+        }
+    }
+
+    /**
+     * Identity wrapper for borrowed objects, as pooled objects
+     * may override {@link Object#equals(Object)}.
+     */
+    private static final class Loan {
+        private final Object resource;
+
+        private Loan(Object resource) {
+            this.resource = resource;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Loan && ((Loan) o).resource == resource;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(resource);
+        }
+    }
+
+    /**
+     * A builder for {@link SafePool SafePools}.
+     * <p>
+     * By default, a pool holds at most {@code 8} objects, does not validate
+     * objects, evicts objects on any failure, never evicts idle objects and
+     * waits indefinitely on {@link SafePool#borrow()}. As waiting borrowers may
+     * be overtaken by newly arriving ones (cmp. {@link SafePool#borrow()}),
+     * setting a {@link #borrowTimeout(long, TimeUnit) borrow timeout} is
+     * recommended under heavy contention.
+     * @param <R> type of pooled objects
+     */
+    public static final class Builder<R extends AutoCloseable> {
+        private final Callable<? extends R> factory;
+        private int maxSize = 8;
+        private Predicate<? super R> validator = r -> true;
+        private List<Class<? extends Throwable>> evictOn = Collections.singletonList(Throwable.class);
+        private long idleTimeoutNanos = Long.MAX_VALUE;
+        private long borrowTimeoutNanos = Long.MAX_VALUE;
+
+        private Builder(Callable<? extends R> factory) {
+            this.factory = factory;
+        }
+
+        /**
+         * Set the maximum number of objects owned by the pool.
+         * @param maxSize the maximum pool size, must be positive
+         * @return {@code this} builder
+         */
+        public Builder<R> maxSize(int maxSize) {
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize must be positive, got " + maxSize);
+            }
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Set the {@link Predicate predicate} objects must pass when released.
+         * <p>
+         * A validator that throws is treated as a failed validation.
+         * @param validator the validator
+         * @return {@code this} builder
+         */
+        public Builder<R> validator(@NonNull Predicate<? super R> validator) {
+            this.validator = validator;
+            return this;
+        }
+
+        /**
+         * Set the exception types that cause an object to be evicted
+         * when released after a failure.
+         * <p>
+         * Failures of any other type leave the object in the pool.
+         * @param exceptionClasses the exception types to evict on
+         * @return {@code this} builder
+         */
+        @SafeVarargs
+        public final Builder<R> evictOn(@NonNull Class<? extends Throwable>... exceptionClasses) {
+            this.evictOn = Arrays.asList(exceptionClasses.clone());
+            return this;
+        }
+
+        /**
+         * Set the time after which idle objects are evicted.
+         * @param timeout the idle timeout, must not be negative
+         * @param unit the unit of {@code timeout}
+         * @return {@code this} builder
+         */
+        public Builder<R> idleTimeout(long timeout, @NonNull TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("idle timeout must not be negative, got " + timeout);
+            }
+            this.idleTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Set the maximum time {@link SafePool#borrow()} waits
+         * for an object to become available.
+         * @param timeout the borrow timeout, must not be negative
+         * @param unit the unit of {@code timeout}
+         * @return {@code this} builder
+         */
+        public Builder<R> borrowTimeout(long timeout, @NonNull TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("borrow timeout must not be negative, got " + timeout);
+            }
+            this.borrowTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Build a new pool.
+         * @return the new {@code SafePool}
+         */
+        public SafePool<R> build() {
+            return new SafePool<>(this);
+        }
+    }
+
+}
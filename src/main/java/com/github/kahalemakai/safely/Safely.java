@@ -119,5 +119,48 @@ public final class Safely {
         silently(r).run();
     }
 
+    /**
+     * Borrow an object from a {@link SafePool pool}, apply a
+     * {@link ThrowingFunction function} to it, and hand it back.
+     * <p>
+     * If the function fails, the object is released along with the failure,
+     * such that the pool may evict it (cmp. {@link SafePool#release(AutoCloseable, Throwable)}),
+     * and the failure is wrapped into a {@link WrappingException WrappingException},
+     * unless it already is one. If releasing the object fails as well, that
+     * exception is added to the original failure as suppressed exception.
+     * <p>
+     * The function must not release the borrowed object itself; otherwise,
+     * the {@link IllegalStateException IllegalStateException} thrown by
+     * {@link SafePool#release(AutoCloseable)} replaces the function's result.
+     * @param pool the {@code SafePool} to borrow from
+     * @param fn the {@code ThrowingFunction} to apply to the borrowed object
+     * @param <R> type of pooled objects
+     * @param <T> type of return value of the {@code ThrowingFunction}
+     * @return the result of applying {@code fn} to the borrowed object
+     *
+     * @see SafePool#borrow()
+     */
+    public static <R extends AutoCloseable, T> T withPooled(SafePool<R> pool, ThrowingFunction<? super R, ? extends T> fn) {
+        final R resource = pool.borrow();
+        final T result;
+        try {
+            result = fn.apply(resource);
+        }
+        catch (Throwable e) {
+            try {
+                pool.release(resource, e);
+            }
+            catch (Throwable releaseFailure) {
+                e.addSuppressed(releaseFailure);
+            }
+            if (e instanceof WrappingException) {
+                throw (WrappingException) e;
+            }
+            throw new WrappingException(e);
+        }
+        pool.release(resource);
+        return result;
+    }
+
 }
 
@@ -0,0 +1,35 @@
+package com.github.kahalemakai.safely;
+
+import java.util.function.Function;
+
+/**
+ * A replacement for {@link Function} that may throw
+ * checked exceptions (cmp. {@link Function#apply(Object)}).
+ * @param <T> type of the input to {@link #apply(Object)}
+ * @param <R> type of value returned by {@link #apply(Object)}
+ * <p>
+ * This is a <a href="package-summary.html">functional interface</a>
+ * whose functional method is {@link #apply(Object)}.
+ */
+public interface ThrowingFunction<T, R> {
+
+    /**
+     * Applies this function to the given argument.
+     *
+     * @param t the function argument
+     * @return the function result
+     * @throws Exception if unable to compute a result
+     */
+    R apply(T t) throws Exception;
+
+    /**
+     * Convert {@code this} instance into a {@link Function Function},
+     * wrapping any {@link Throwable throwable} into a
+     * {@link WrappingException WrappingException}.
+     * @return {@code this} as {@code Function}
+     */
+    default Function<T, R> asFunction() {
+        return t -> Safely.call(() -> apply(t));
+    }
+
+}
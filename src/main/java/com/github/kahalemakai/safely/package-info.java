@@ -15,6 +15,19 @@
  *         {@link com.github.kahalemakai.safely.WrappingException WrappingException} –
  *         an exception that easily wraps around (probably checked) exceptions
  *     </li>
+ *     <li>
+ *         {@link com.github.kahalemakai.safely.KeyedSafeExecutor KeyedSafeExecutor} –
+ *         an executor that runs tasks serially per key, but in parallel across keys
+ *     </li>
+ *     <li>
+ *         {@link com.github.kahalemakai.safely.SafePool SafePool} –
+ *         a bounded, lock-free pool of expensive {@link java.lang.AutoCloseable AutoCloseables}
+ *     </li>
+ *     <li>
+ *         {@link com.github.kahalemakai.safely.ThrowingFunction ThrowingFunction} –
+ *         an interface similarly to {@link java.util.function.Function Function}
+ *         that may throw checked exceptions
+ *     </li>
  * </ul>
  */
 package com.github.kahalemakai.safely;
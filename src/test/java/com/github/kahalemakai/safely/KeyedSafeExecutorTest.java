@@ -0,0 +1,161 @@
+package com.github.kahalemakai.safely;
+
+import lombok.val;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class KeyedSafeExecutorTest {
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void runsInOrderPerKey() throws Exception {
+        val executor = new KeyedSafeExecutor<Integer>(pool);
+        val results = new ConcurrentHashMap<Integer, List<Integer>>();
+        val numKeys = 8;
+        val numTasks = 1000;
+        for (int k = 0; k < numKeys; k++) {
+            results.put(k, Collections.synchronizedList(new ArrayList<>()));
+        }
+        for (int i = 0; i < numTasks; i++) {
+            for (int k = 0; k < numKeys; k++) {
+                final int key = k;
+                final int value = i;
+                executor.execute(key, () -> results.get(key).add(value));
+            }
+        }
+        val done = new CountDownLatch(numKeys);
+        for (int k = 0; k < numKeys; k++) {
+            executor.execute(k, done::countDown);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int k = 0; k < numKeys; k++) {
+            val list = results.get(k);
+            assertEquals(numTasks, list.size());
+            for (int i = 0; i < numTasks; i++) {
+                assertEquals(i, (int) list.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void runsInParallelAcrossKeys() throws Exception {
+        val executor = new KeyedSafeExecutor<String>(pool);
+        val bothRunning = new CountDownLatch(2);
+        val done = new CountDownLatch(2);
+        for (val key : new String[]{"a", "b"}) {
+            executor.execute(key, () -> {
+                bothRunning.countDown();
+                Safely.call(() -> bothRunning.await(10, TimeUnit.SECONDS));
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void busyKeyDoesNotStarveOtherKeys() throws Exception {
+        val singleThread = Executors.newSingleThreadExecutor();
+        try {
+            val executor = new KeyedSafeExecutor<String>(singleThread);
+            val stop = new AtomicBoolean();
+            val busyRuns = new AtomicInteger();
+            executor.execute("busy", new Runnable() {
+                @Override
+                public void run() {
+                    busyRuns.getAndIncrement();
+                    if (!stop.get()) {
+                        executor.execute("busy", this);
+                    }
+                }
+            });
+            val other = executor.submit("other", () -> 42);
+            try {
+                assertEquals(42, (int) other.get(10, TimeUnit.SECONDS));
+            } finally {
+                stop.set(true);
+            }
+            assertTrue(busyRuns.get() > 0);
+        } finally {
+            singleThread.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failuresAreRoutedToHandlerAndDoNotStallKey() throws Exception {
+        val failures = new AtomicInteger();
+        val failedKey = new AtomicReference<String>();
+        val executor = new KeyedSafeExecutor<String>(pool, (key, e) -> {
+            failedKey.set(key);
+            failures.getAndIncrement();
+            throw new IllegalStateException("handler failure is silenced");
+        });
+        executor.execute("a", () -> {
+            throw new IllegalArgumentException();
+        });
+        val future = executor.submit("a", () -> {
+            throw new IOException("your luck");
+        });
+        val result = executor.submit("a", () -> 42);
+        assertEquals(42, (int) result.get(10, TimeUnit.SECONDS));
+        assertEquals(2, failures.get());
+        assertEquals("a", failedKey.get());
+        try {
+            future.get();
+            throw new AssertionError("didn't catch an exception");
+        } catch (ExecutionException e) {
+            assertEquals(IOException.class, e.getCause().getClass());
+            assertEquals("your luck", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void idleKeysAreRemoved() throws Exception {
+        val executor = new KeyedSafeExecutor<Integer>(pool);
+        for (int k = 0; k < 100; k++) {
+            executor.submit(k, () -> null).get(10, TimeUnit.SECONDS);
+        }
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (executor.activeKeys() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, executor.activeKeys());
+    }
+
+    @Test
+    public void runsOnCallerIfPoolRejects() throws Exception {
+        pool.shutdown();
+        val executor = new KeyedSafeExecutor<String>(pool);
+        val caller = Thread.currentThread();
+        val future = executor.submit("a", () -> Thread.currentThread() == caller);
+        assertTrue(future.get(10, TimeUnit.SECONDS));
+        assertEquals(0, executor.activeKeys());
+    }
+
+}
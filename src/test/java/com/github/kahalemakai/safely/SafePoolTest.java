@@ -0,0 +1,311 @@
+package com.github.kahalemakai.safely;
+
+import lombok.val;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SafePoolTest {
+
+    @Test
+    public void reusesObjects() throws Exception {
+        val created = new AtomicInteger();
+        val pool = SafePool.builder(() -> new Resource(created.getAndIncrement())).build();
+        val r1 = pool.borrow();
+        pool.release(r1);
+        val r2 = pool.borrow();
+        assertSame(r1, r2);
+        pool.release(r2);
+        assertEquals(1, created.get());
+        assertEquals(2, pool.getBorrowCount());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0.5, pool.getHitRate(), 1e-6);
+        assertTrue(pool.getTotalBorrowWaitNanos() >= 0);
+        assertEquals(1, pool.getSize());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void evictsOnConfiguredFailures() throws Exception {
+        val pool = SafePool.builder(() -> new Resource(0))
+                .evictOn(IOException.class)
+                .build();
+        assertTrue(pool.evicts(new IOException()));
+        assertTrue(pool.evicts(new WrappingException(new IOException())));
+        assertFalse(pool.evicts(new IllegalArgumentException()));
+        assertFalse(pool.evicts(new WrappingException(new IllegalArgumentException())));
+
+        val r1 = pool.borrow();
+        pool.release(r1, new IllegalArgumentException());
+        assertFalse(r1.closed);
+        assertEquals(1, pool.getIdleCount());
+
+        val r2 = pool.borrow();
+        assertSame(r1, r2);
+        pool.release(r2, new WrappingException(new IOException()));
+        assertTrue(r2.closed);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void evictsOnNestedWrappedFailures() throws Exception {
+        val pool = SafePool.builder(() -> new Resource(0))
+                .evictOn(IOException.class)
+                .build();
+        final SafeCallable<Integer> failing = Safely.wrapCallable(() -> {
+            throw new IOException("your luck");
+        });
+        val r1 = pool.borrow();
+        pool.release(r1);
+        try {
+            Safely.withPooled(pool, r -> failing.andThen(i -> i + 1).call());
+            throw new AssertionError("didn't catch an exception");
+        } catch (WrappingException e) {
+            assertTrue(pool.evicts(e));
+        }
+        assertTrue(r1.closed);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void validatesOnRelease() throws Exception {
+        val pool = SafePool.builder(() -> new Resource(0))
+                .validator(r -> !r.broken)
+                .build();
+        val r1 = pool.borrow();
+        r1.broken = true;
+        pool.release(r1);
+        assertTrue(r1.closed);
+        assertEquals(0, pool.getSize());
+        assertNotSame(r1, pool.borrow());
+    }
+
+    @Test
+    public void evictsIdleObjects() throws Exception {
+        val pool = SafePool.builder(() -> new Resource(0))
+                .idleTimeout(1, TimeUnit.MILLISECONDS)
+                .build();
+        val r1 = pool.borrow();
+        pool.release(r1);
+        Thread.sleep(10);
+        assertEquals(1, pool.evictIdle());
+        assertTrue(r1.closed);
+        assertEquals(0, pool.getSize());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void borrowTimesOut() throws Exception {
+        val pool = SafePool.builder(() -> new Resource(0))
+                .maxSize(1)
+                .borrowTimeout(10, TimeUnit.MILLISECONDS)
+                .build();
+        pool.borrow();
+        try {
+            pool.borrow();
+            throw new AssertionError("didn't catch an exception");
+        } catch (WrappingException e) {
+            assertTrue(e.wraps(TimeoutException.class));
+        }
+    }
+
+    @Test
+    public void handsReleasedObjectToWaiter() throws Exception {
+        val pool = SafePool.builder(() -> new Resource(0))
+                .maxSize(1)
+                .build();
+        val r1 = pool.borrow();
+        val executor = Executors.newSingleThreadExecutor();
+        try {
+            val future = executor.submit(pool::borrow);
+            Thread.sleep(10);
+            pool.release(r1);
+            assertSame(r1, future.get(10, TimeUnit.SECONDS));
+            assertEquals(1, pool.getHitCount());
+            assertEquals(0, pool.getIdleCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void factoryFailureWakesNextWaiter() throws Exception {
+        val calls = new AtomicInteger();
+        val pool = SafePool.builder(() -> {
+            if (calls.getAndIncrement() == 1) {
+                throw new IOException("your luck");
+            }
+            return new Resource(calls.get());
+        }).maxSize(1).build();
+        val r1 = pool.borrow();
+        val executor = Executors.newFixedThreadPool(2);
+        try {
+            val first = executor.submit(pool::borrow);
+            Thread.sleep(10);
+            val second = executor.submit(pool::borrow);
+            Thread.sleep(10);
+            pool.release(r1, new IOException());
+            try {
+                first.get(10, TimeUnit.SECONDS);
+                throw new AssertionError("didn't catch an exception");
+            } catch (ExecutionException e) {
+                assertTrue(((WrappingException) e.getCause()).wraps(IOException.class));
+            }
+            assertNotNull(second.get(10, TimeUnit.SECONDS));
+            assertEquals(1, pool.getSize());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeWakesWaiters() throws Exception {
+        val pool = SafePool.builder(() -> new Resource(0))
+                .maxSize(1)
+                .build();
+        pool.borrow();
+        val executor = Executors.newSingleThreadExecutor();
+        try {
+            val future = executor.submit(pool::borrow);
+            Thread.sleep(10);
+            pool.close();
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                throw new AssertionError("didn't catch an exception");
+            } catch (ExecutionException e) {
+                assertEquals(IllegalStateException.class, e.getCause().getClass());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void staysBoundedUnderContention() throws Exception {
+        val created = new AtomicInteger();
+        val inUse = new AtomicInteger();
+        val maxInUse = new AtomicInteger();
+        val pool = SafePool.builder(() -> new Resource(created.getAndIncrement()))
+                .maxSize(2)
+                .build();
+        val executor = Executors.newFixedThreadPool(8);
+        try {
+            val done = new CountDownLatch(1000);
+            for (int i = 0; i < 1000; i++) {
+                executor.execute(() -> {
+                    Safely.withPooled(pool, r -> {
+                        maxInUse.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+                        inUse.decrementAndGet();
+                        return r.id;
+                    });
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(maxInUse.get() <= 2);
+        assertTrue(created.get() <= 2);
+        assertEquals(1000, pool.getBorrowCount());
+    }
+
+    @Test
+    public void closesIdleObjects() throws Exception {
+        val pool = SafePool.builder(() -> new Resource(0)).build();
+        val r1 = pool.borrow();
+        val r2 = pool.borrow();
+        pool.release(r1);
+        pool.close();
+        assertTrue(r1.closed);
+        assertFalse(r2.closed);
+        pool.release(r2);
+        assertTrue(r2.closed);
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void releasingTwiceThrows() throws Exception {
+        val pool = SafePool.builder(() -> new Resource(0)).build();
+        val r1 = pool.borrow();
+        pool.release(r1);
+        try {
+            pool.release(r1);
+            throw new AssertionError("didn't catch an exception");
+        } catch (IllegalStateException e) {
+            assertEquals(1, pool.getIdleCount());
+        }
+        val r2 = pool.borrow();
+        assertSame(r1, r2);
+        assertNotSame(r2, pool.borrow());
+    }
+
+    @Test
+    public void releasingForeignObjectThrows() throws Exception {
+        val pool = SafePool.builder(() -> new Resource(0))
+                .maxSize(1)
+                .build();
+        pool.borrow();
+        val foreign = new Resource(1);
+        try {
+            pool.release(foreign, new IOException());
+            throw new AssertionError("didn't catch an exception");
+        } catch (IllegalStateException e) {
+            assertFalse(foreign.closed);
+            assertEquals(1, pool.getSize());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void borrowFromClosedPoolThrows() throws Exception {
+        val pool = SafePool.builder(() -> new Resource(0)).build();
+        pool.close();
+        pool.borrow();
+    }
+
+    @Test
+    public void factoryReturningNullFails() throws Exception {
+        val pool = SafePool.<Resource>builder(() -> null)
+                .maxSize(1)
+                .build();
+        try {
+            pool.borrow();
+            throw new AssertionError("didn't catch an exception");
+        } catch (WrappingException e) {
+            assertTrue(e.wraps(NullPointerException.class));
+        }
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxSizeMustBePositive() throws Exception {
+        SafePool.builder(() -> new Resource(0)).maxSize(0);
+    }
+
+    private static class Resource implements AutoCloseable {
+        private final int id;
+        private boolean broken;
+        private volatile boolean closed;
+
+        private Resource(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+}
@@ -8,6 +8,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class SafelyTest {
 
@@ -89,4 +90,47 @@ public class SafelyTest {
         Safely.runSilently(r);
         assertEquals(2, counter.get());
     }
+
+    @Test
+    public void withPooled() throws Exception {
+        val closed = new AtomicInteger();
+        final AutoCloseable resource = closed::getAndIncrement;
+        val pool = SafePool.builder(() -> resource).build();
+        assertEquals(42, (int) Safely.withPooled(pool, r -> 42));
+        assertEquals(1, pool.getIdleCount());
+        try {
+            Safely.withPooled(pool, r -> {
+                throw new IOException("your luck");
+            });
+            throw new AssertionError("didn't catch an exception");
+        }
+        catch (WrappingException e) {
+            assertEquals("your luck", e.getMessage());
+        }
+        assertEquals(1, closed.get());
+        assertEquals(0, pool.getSize());
+        val wrapped = new WrappingException(new IOException());
+        try {
+            Safely.withPooled(pool, r -> {
+                throw wrapped;
+            });
+            throw new AssertionError("didn't catch an exception");
+        }
+        catch (WrappingException e) {
+            assertSame(wrapped, e);
+        }
+        try {
+            Safely.withPooled(pool, r -> {
+                pool.release(r);
+                throw new IOException("released too early");
+            });
+            throw new AssertionError("didn't catch an exception");
+        }
+        catch (WrappingException e) {
+            assertEquals("released too early", e.getMessage());
+            val suppressed = e.getWrappedException().getSuppressed();
+            assertEquals(1, suppressed.length);
+            assertEquals(IllegalStateException.class, suppressed[0].getClass());
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,26 @@
+package com.github.kahalemakai.safely;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThrowingFunctionTest {
+
+    @Test
+    public void asFunction() throws Exception {
+        final ThrowingFunction<Integer, Integer> f = i -> i * 2;
+        assertEquals(42, (int) f.asFunction().apply(21));
+        final ThrowingFunction<Integer, Integer> f2 = i -> {
+            throw new IOException("your luck");
+        };
+        try {
+            f2.asFunction().apply(21);
+            throw new AssertionError("didn't catch an exception");
+        } catch (WrappingException e) {
+            assertEquals("your luck", e.getMessage());
+        }
+    }
+
+}